@@ -18,6 +18,38 @@ public final class DBConfig {
      */
     public final static String DB_PWD = System.getProperty("rmm.db.password", "password");
 
+    /**
+     * Maximum number of DB connections used by the service - override through rmm.db.poolSize property.
+     */
+    public final static int DB_POOL_SIZE = Integer.getInteger("rmm.db.poolSize", 8);
+
+    /**
+     * Milliseconds a request waits for a free connection - override through rmm.db.poolTimeout property.
+     */
+    public final static long DB_POOL_TIMEOUT = Long.getLong("rmm.db.poolTimeout", 5000);
+
+    /**
+     * Prepared statements kept open per connection - override through rmm.db.statementCache property.
+     */
+    public final static int DB_STATEMENT_CACHE = Integer.getInteger("rmm.db.statementCache", 32);
+
+    /**
+     * Executions of a statement before Postgres prepares it server-side (driver default is 5).
+     * Override through rmm.db.prepareThreshold property.
+     */
+    public final static int DB_PREPARE_THRESHOLD = Integer.getInteger("rmm.db.prepareThreshold", 1);
+
+    /**
+     * Number of hash partitions for customer-keyed tables created by {@link SchemaMigrator} on Postgres.
+     * Override through rmm.db.partitions property.
+     */
+    public final static int DB_PARTITIONS = Integer.getInteger("rmm.db.partitions", 16);
+
+    /**
+     * Rows copied per transaction by {@link SchemaMigrator}. Override through rmm.migration.batch property.
+     */
+    public final static int MIGRATION_BATCH = Integer.getInteger("rmm.migration.batch", 5000);
+
     /** Utility class. */
     private DBConfig() {}
 }
@@ -17,9 +17,30 @@ import javax.validation.constraints.Size;
 public class Device {
 
     public static enum Type {
-        WINDOWS_WORKSTATION,
-        WINDOWS_SERVER,
-        MAC;
+        WINDOWS_WORKSTATION(1),
+        WINDOWS_SERVER(2),
+        MAC(3);
+
+        /** Compact code stored in the DB. 0 is reserved for "any type" in service pricing. */
+        private final short code;
+
+        Type(final int code) {
+            this.code = (short) code;
+        }
+
+        public short getCode() {
+            return code;
+        }
+
+        /** Map a DB code back to a type. */
+        public static Type fromCode(final int code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown device type code: " + code);
+        }
     }
 
     /** Device ID. */
@@ -2,27 +2,103 @@ package ninja;
 
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * Provides data access for RMM app.
  * <p>
  * Methods here will throw SQLException on failure. In a real system, SQLEXception would be
  * caught locally, and wrapped in an application-specific exception.
+ * <p>
+ * Each DAO owns one connection, and prepares statements once for it through a {@link StatementCache}.
+ * A DAO is not thread-safe: share DAOs through a {@link RmmDAOPool}.
  */
-public class RmmDAO {
+public class RmmDAO implements AutoCloseable {
+
+    /** Device list for a customer, served from the primary key. */
+    static final String DEVICES_QUERY = "SELECT id, type, name FROM customer_devices WHERE customer = ? ORDER BY id";
+
+    /** Device count by type for a customer, served from the (customer, type) index. */
+    static final String COUNT_QUERY =
+            "SELECT type, count(*) AS cnt FROM customer_devices WHERE customer = ? GROUP BY type";
 
     /**
-     * Persistent DB conneciton. In a real application, this would use a connection pool.
+     * {@link #COUNT_QUERY}, with the summed price of the customer's services that apply to each type (null if
+     * none do), and the base device price. One statement, so it sees a single snapshot.
+     */
+    static final String COST_QUERY = "SELECT d.type, d.cnt, " +
+            "(SELECT sum(sp.price) FROM customer_services s JOIN service_prices sp ON sp.service = s.service " +
+            "WHERE s.customer = ? AND sp.type IN (0, d.type)) AS services, " +
+            "(SELECT price FROM service_prices WHERE service = 'Device' AND type = 0) AS device " +
+            "FROM (" + COUNT_QUERY + ") d";
+
+    /** {@link #COST_QUERY} rows, followed by one row per service of the customer, in one statement. */
+    static final String SUMMARY_QUERY = "SELECT type, cnt, services, device, NULL AS service " +
+            "FROM (" + COST_QUERY + ") c " +
+            "UNION ALL SELECT NULL, NULL, NULL, NULL, service FROM customer_services WHERE customer = ? " +
+            "ORDER BY service";
+
+    /** Seconds to wait when checking a connection. */
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    /**
+     * DB connection, owned by this DAO.
      */
     private final Connection connection;
 
+    /** Prepared statements for {@link #connection}. */
+    private final StatementCache statements;
+
     /**
      * Constructor.
      */
     RmmDAO(final String jdbcUrl, final String user, final String password) throws SQLException {
-        connection = DriverManager.getConnection(jdbcUrl, user, password);
+        this(DriverManager.getConnection(jdbcUrl, connectionProperties(jdbcUrl, user, password)));
+    }
+
+    /**
+     * Constructor, taking ownership of an open connection.
+     */
+    RmmDAO(final Connection connection) throws SQLException {
+        this.connection = connection;
+        this.statements = new StatementCache(connection, DBConfig.DB_STATEMENT_CACHE);
+    }
+
+    private static Properties connectionProperties(final String jdbcUrl, final String user, final String password) {
+        final Properties properties = new Properties();
+        properties.setProperty("user", user);
+        properties.setProperty("password", password);
+        if (jdbcUrl.startsWith("jdbc:postgresql:")) {
+            // Switch to a named server-side statement after this many executions of the same PreparedStatement.
+            properties.setProperty("prepareThreshold", String.valueOf(DBConfig.DB_PREPARE_THRESHOLD));
+        }
+        return properties;
+    }
+
+    /**
+     * Whether the connection still works.
+     */
+    boolean isValid() {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT);
+        } catch (final SQLException sqle) {
+            return false;
+        }
+    }
+
+    /**
+     * Close cached statements and the connection.
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            statements.close();
+        } finally {
+            connection.close();
+        }
     }
 
     /**
@@ -34,12 +110,15 @@ public class RmmDAO {
      */
     public void addDevices(final String customer, final List<Device> devices) throws SQLException {
         connection.setAutoCommit(false);
-        String query = "INSERT INTO devices (customer, id, type, name) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(query)) {
+        String query = "INSERT INTO customer_devices (customer, id, type, name) VALUES (?, ?, ?, ?)";
+        final PreparedStatement ps = statements.prepare(query);
+        // Drop anything left over from a failed batch.
+        ps.clearBatch();
+        try {
             for (Device record : devices) {
                 ps.setString(1, customer);
                 ps.setString(2, record.getId());
-                ps.setString(3, record.getType().toString());
+                ps.setShort(3, record.getType().getCode());
                 ps.setString(4, record.getName());
                 ps.addBatch();
             }
@@ -59,10 +138,13 @@ public class RmmDAO {
      */
     public void updateDevices(final String customer, final List<Device> devices) throws SQLException {
         connection.setAutoCommit(false);
-        String query = "UPDATE devices SET type = ?, name = ? WHERE customer = ? AND id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(query)) {
+        String query = "UPDATE customer_devices SET type = ?, name = ? WHERE customer = ? AND id = ?";
+        final PreparedStatement ps = statements.prepare(query);
+        // Drop anything left over from a failed batch.
+        ps.clearBatch();
+        try {
             for (Device record : devices) {
-                ps.setString(1, record.getType().toString());
+                ps.setShort(1, record.getType().getCode());
                 ps.setString(2, record.getName());
                 ps.setString(3, customer);
                 ps.setString(4, record.getId());
@@ -84,8 +166,9 @@ public class RmmDAO {
      */
     public void deleteDevice(final String customer, final String device) throws SQLException {
         connection.setAutoCommit(false);
-        String query = "DELETE FROM devices WHERE customer = ? and id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(query)) {
+        String query = "DELETE FROM customer_devices WHERE customer = ? and id = ?";
+        final PreparedStatement ps = statements.prepare(query);
+        try {
             ps.setString(1, customer);
             ps.setString(2, device);
             ps.execute();
@@ -102,26 +185,73 @@ public class RmmDAO {
      * @throws SQLException
      */
     public List<Device> getDevices(final String customer) throws SQLException {
-        String query = "SELECT id, type, name FROM devices WHERE customer = ? ORDER BY id";
-        PreparedStatement ps = connection.prepareStatement(query);
+        final PreparedStatement ps = statements.prepare(DEVICES_QUERY);
         ps.setString(1, customer);
-        final ResultSet results = ps.executeQuery();
-        if (results == null) {
-            return Collections.emptyList();
-        }
-
         final List<Device> devices = new ArrayList<>();
-        while (results.next()) {
-            devices.add(
-                    Device.builder()
-                            .id(results.getString("id"))
-                            .type(Device.Type.valueOf(results.getString("type")))
-                            .name(results.getString("name"))
-                            .build());
+        try (ResultSet results = ps.executeQuery()) {
+            while (results.next()) {
+                devices.add(
+                        Device.builder()
+                                .id(results.getString("id"))
+                                .type(Device.Type.fromCode(results.getShort("type")))
+                                .name(results.getString("name"))
+                                .build());
+            }
         }
         return devices;
     }
 
+    /**
+     * Count devices of each type for the specified customer.
+     * @param customer Customer ID.
+     * @return Device count for every type, zero if none.
+     * @throws SQLException
+     */
+    public Map<Device.Type, Integer> countDevices(final String customer) throws SQLException {
+        final Map<Device.Type, Integer> counts = noDevices();
+        final PreparedStatement ps = statements.prepare(COUNT_QUERY);
+        ps.setString(1, customer);
+        try (ResultSet results = ps.executeQuery()) {
+            while (results.next()) {
+                counts.put(Device.Type.fromCode(results.getShort("type")), results.getInt("cnt"));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Summarize a customer without transferring the device list. Devices are counted once, and the cost is
+     * computed from those counts, all in one statement.
+     * @param customer Customer ID.
+     * @return Device counts by type, services and monthly cost.
+     * @throws SQLException
+     */
+    public Summary getSummary(final String customer) throws SQLException {
+        final PreparedStatement ps = statements.prepare(SUMMARY_QUERY);
+        ps.setString(1, customer);
+        ps.setString(2, customer);
+        ps.setString(3, customer);
+        final Map<Device.Type, Integer> counts = noDevices();
+        final List<String> services = new ArrayList<>();
+        int cost = 0;
+        try (ResultSet results = ps.executeQuery()) {
+            while (results.next()) {
+                final String service = results.getString("service");
+                if (service != null) {
+                    services.add(service);
+                } else {
+                    counts.put(Device.Type.fromCode(results.getShort("type")), results.getInt("cnt"));
+                    cost += cost(results);
+                }
+            }
+        }
+        return Summary.builder()
+                .devices(counts)
+                .services(services)
+                .cost(cost)
+                .build();
+    }
+
     /**
      * Add services.
      *
@@ -131,8 +261,11 @@ public class RmmDAO {
      */
     public void addServices(final String customer, final List<String> services) throws SQLException {
         connection.setAutoCommit(false);
-        String query = "INSERT INTO services (customer, service) VALUES (?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(query)) {
+        String query = "INSERT INTO customer_services (customer, service) VALUES (?, ?)";
+        final PreparedStatement ps = statements.prepare(query);
+        // Drop anything left over from a failed batch.
+        ps.clearBatch();
+        try {
             for (String service : services) {
                 ps.setString(1, customer);
                 ps.setString(2, service);
@@ -154,8 +287,9 @@ public class RmmDAO {
      */
     public void deleteService(final String customer, final String service) throws SQLException {
         connection.setAutoCommit(false);
-        String query = "DELETE FROM services WHERE customer = ? and service = ?";
-        try (PreparedStatement ps = connection.prepareStatement(query)) {
+        String query = "DELETE FROM customer_services WHERE customer = ? and service = ?";
+        final PreparedStatement ps = statements.prepare(query);
+        try {
             ps.setString(1, customer);
             ps.setString(2, service);
             ps.execute();
@@ -172,35 +306,56 @@ public class RmmDAO {
      * @throws SQLException
      */
     public List<String> getServices(final String customer) throws SQLException {
-        String query = "SELECT service FROM services WHERE customer = ? ORDER BY service";
-        PreparedStatement ps = connection.prepareStatement(query);
+        String query = "SELECT service FROM customer_services WHERE customer = ? ORDER BY service";
+        final PreparedStatement ps = statements.prepare(query);
         ps.setString(1, customer);
-        final ResultSet results = ps.executeQuery();
-        if (results == null) {
-            return Collections.emptyList();
-        }
-
         final List<String> services = new ArrayList<>();
-        while (results.next()) {
-            services.add(results.getString("service"));
+        try (ResultSet results = ps.executeQuery()) {
+            while (results.next()) {
+                services.add(results.getString("service"));
+            }
         }
         return services;
     }
 
+    /**
+     * Monthly cost for a customer.
+     * @param customer Customer ID.
+     * @return Total cost.
+     * @throws SQLException
+     */
     public int monthlyCost(final String customer) throws SQLException {
-        // Total up service costs for each device in inner query, then add the per-device cost in outer query
-        String query = "select sum(costs.per_device + (select price from service_defs where service = 'Device')) as total " +
-                "FROM (SELECT d.id, sum(sd.price) as per_device " +
-                "FROM devices d, services s " +
-                "INNER JOIN service_defs sd ON s.service = sd.service " +
-                "WHERE d.customer = ? and s.customer = ? and " +
-                "(sd.type = '' OR sd.type = d.type) group by d.id) as costs";
-        try (PreparedStatement ps = connection.prepareStatement(query)) {
-            ps.setString(1, customer);
-            ps.setString(2, customer);
-            ResultSet result = ps.executeQuery();
-            result.next();
-            return result.getInt("total");
+        final PreparedStatement ps = statements.prepare(COST_QUERY);
+        ps.setString(1, customer);
+        ps.setString(2, customer);
+        int total = 0;
+        try (ResultSet results = ps.executeQuery()) {
+            while (results.next()) {
+                total += cost(results);
+            }
+        }
+        return total;
+    }
+
+    /** Device count for every type, all zero. */
+    private static Map<Device.Type, Integer> noDevices() {
+        final Map<Device.Type, Integer> counts = new EnumMap<>(Device.Type.class);
+        for (Device.Type type : Device.Type.values()) {
+            counts.put(type, 0);
+        }
+        return counts;
+    }
+
+    /**
+     * Cost of the devices of one type, from a {@link #COST_QUERY} row. Each device costs the base device price
+     * plus the services that apply to its type. A device type with no applicable service costs nothing, not
+     * even the base price.
+     */
+    private static int cost(final ResultSet row) throws SQLException {
+        final int services = row.getInt("services");
+        if (row.wasNull()) {
+            return 0;
         }
+        return row.getInt("cnt") * (row.getInt("device") + services);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+package ninja;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size pool of DAOs, each owning one connection and its statement cache.
+ * <p>
+ * DAOs are created on demand and handed to one caller at a time. A DAO whose call failed is checked, and
+ * discarded if its connection is broken, so the next call gets a fresh one.
+ */
+class RmmDAOPool implements AutoCloseable {
+
+    /** Opens a new DAO. */
+    interface Factory {
+        RmmDAO create() throws SQLException;
+    }
+
+    /** Work done with a DAO. */
+    interface Call<T> {
+        T call(RmmDAO dao) throws SQLException;
+    }
+
+    private final Factory factory;
+
+    /** One permit per DAO, idle or in use. */
+    private final Semaphore permits;
+
+    /** Most recently used first, so a quiet period lets the rest go idle together. */
+    private final BlockingDeque<RmmDAO> idle = new LinkedBlockingDeque<>();
+
+    /** How long to wait for a DAO, in milliseconds. */
+    private final long timeout;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     */
+    RmmDAOPool(final Factory factory, final int size, final long timeout) {
+        this.factory = factory;
+        this.permits = new Semaphore(size, true);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Run a call with a DAO from the pool.
+     *
+     * @param call Work to do.
+     * @return Result of the call.
+     * @throws SQLException If the call fails, or no DAO became available in time.
+     */
+    <T> T call(final Call<T> call) throws SQLException {
+        if (closed) {
+            throw new SQLException("Pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("No connection available after " + timeout + " ms");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        RmmDAO dao = null;
+        boolean healthy = false;
+        try {
+            dao = idle.pollFirst();
+            if (dao == null) {
+                dao = factory.create();
+            }
+            final T result = call.call(dao);
+            healthy = true;
+            return result;
+        } catch (final SQLException | RuntimeException e) {
+            healthy = dao != null && dao.isValid();
+            throw e;
+        } finally {
+            if (dao != null) {
+                if (healthy && !closed) {
+                    idle.offerFirst(dao);
+                    if (closed && idle.remove(dao)) {
+                        // Closed while we were returning it.
+                        discard(dao);
+                    }
+                } else {
+                    discard(dao);
+                }
+            }
+            permits.release();
+        }
+    }
+
+    /** Number of idle DAOs. */
+    int idle() {
+        return idle.size();
+    }
+
+    /**
+     * Close idle DAOs now, and DAOs in use as they are returned.
+     *
+     * @throws SQLException The last failure to close an idle DAO, after trying all of them.
+     */
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+        SQLException failure = null;
+        RmmDAO dao;
+        while ((dao = idle.pollFirst()) != null) {
+            try {
+                dao.close();
+            } catch (final SQLException sqle) {
+                failure = sqle;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Close a DAO that is broken, or returned after the pool was closed. */
+    private static void discard(final RmmDAO dao) {
+        try {
+            dao.close();
+        } catch (final SQLException sqle) {
+            // Dropped on purpose: the DAO is out of the pool either way, and closing a broken connection is
+            // expected to fail. The caller already has the failure that got it discarded, if any.
+        }
+    }
+}
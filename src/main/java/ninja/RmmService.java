@@ -1,6 +1,8 @@
 package ninja;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.security.RolesAllowed;
+import javax.inject.Singleton;
 import javax.validation.Valid;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
@@ -10,22 +12,44 @@ import java.util.Collections;
 import java.util.List;
 
 @Path("/rmm")
+@Singleton
 public class RmmService {
 
-    private RmmDAO dao;
-
-    private RmmDAO getDao() throws SQLException {
-        if (dao == null) {
-            try {
-                // Tomcat would not, for some reason, auto-discover my driver unless I did this.
-                // There is probably a better ServiceFactory-based method to do this.
-                Class.forName("org.postgresql.Driver");
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-            dao = new RmmDAO(DBConfig.DB_URL, DBConfig.DB_USER, DBConfig.DB_PWD);
+    /**
+     * How long a customer summary is served from cache, in milliseconds - override through rmm.summary.ttl property.
+     * Writes through this application invalidate the customer's entry right away.
+     */
+    private static final long SUMMARY_TTL = Long.getLong("rmm.summary.ttl", 5000);
+
+    /** Expired summaries are swept once the cache grows past this many customers. */
+    private static final int SUMMARY_SWEEP_SIZE = 1000;
+
+    /** Shared across requests. */
+    private static final SummaryCache SUMMARIES =
+            new SummaryCache(SUMMARY_TTL, SUMMARY_SWEEP_SIZE, System::currentTimeMillis);
+
+    /** DAOs shared by all requests, so prepared statements are reused across them. */
+    private final RmmDAOPool pool = new RmmDAOPool(RmmService::openDao, DBConfig.DB_POOL_SIZE, DBConfig.DB_POOL_TIMEOUT);
+
+    private static RmmDAO openDao() throws SQLException {
+        try {
+            // Tomcat would not, for some reason, auto-discover my driver unless I did this.
+            // There is probably a better ServiceFactory-based method to do this.
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        return new RmmDAO(DBConfig.DB_URL, DBConfig.DB_USER, DBConfig.DB_PWD);
+    }
+
+    /** Close DB connections on shutdown. */
+    @PreDestroy
+    public void close() {
+        try {
+            pool.close();
+        } catch (final SQLException sqle) {
+            // Shutting down: the server closes the sockets of any connection that failed to close.
         }
-        return dao;
     }
 
     @Path("/devices/{customer}")
@@ -34,7 +58,7 @@ public class RmmService {
     @RolesAllowed({"READER","WRITER"})
     public List<Device> getDevices(@PathParam("customer") final String customer) {
         try {
-            return getDao().getDevices(customer);
+            return pool.call(dao -> dao.getDevices(customer));
         } catch (final SQLException sqle) {
             return Collections.EMPTY_LIST;
         }
@@ -46,7 +70,11 @@ public class RmmService {
     @RolesAllowed({"WRITER"})
     public Response addtDevices(@PathParam("customer") final String customer, @Valid final List<Device> devices) {
         try {
-            getDao().addDevices(customer, devices);
+            pool.call(dao -> {
+                dao.addDevices(customer, devices);
+                return null;
+            });
+            SUMMARIES.invalidate(customer);
             return Response.accepted().build();
         } catch (final SQLException sqle) {
             return Response.status(Response.Status.CONFLICT).entity(sqle.getMessage()).build();
@@ -59,7 +87,11 @@ public class RmmService {
     @RolesAllowed({"WRITER"})
     public Response updateDevices(@PathParam("customer") final String customer, @Valid final List<Device> devices) {
         try {
-            getDao().updateDevices(customer, devices);
+            pool.call(dao -> {
+                dao.updateDevices(customer, devices);
+                return null;
+            });
+            SUMMARIES.invalidate(customer);
             return Response.accepted().build();
         } catch (final SQLException sqle) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(sqle.getMessage()).build();
@@ -72,7 +104,11 @@ public class RmmService {
     @RolesAllowed({"WRITER"})
     public Response deleteDevice(@PathParam("customer") final String customer, @PathParam("device") final String device) {
         try {
-            getDao().deleteDevice(customer, device);
+            pool.call(dao -> {
+                dao.deleteDevice(customer, device);
+                return null;
+            });
+            SUMMARIES.invalidate(customer);
             return Response.accepted().build();
         } catch (final SQLException sqle) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(sqle.getMessage()).build();
@@ -85,7 +121,7 @@ public class RmmService {
     @RolesAllowed({"READER","WRITER"})
     public List<String> getServices(@PathParam("customer") final String customer) {
         try {
-            return getDao().getServices(customer);
+            return pool.call(dao -> dao.getServices(customer));
         } catch (final SQLException sqle) {
             return Collections.EMPTY_LIST;
         }
@@ -97,7 +133,11 @@ public class RmmService {
     @RolesAllowed({"WRITER"})
     public Response addtServices(@PathParam("customer") final String customer, @Valid final List<String> services) {
         try {
-            getDao().addServices(customer, services);
+            pool.call(dao -> {
+                dao.addServices(customer, services);
+                return null;
+            });
+            SUMMARIES.invalidate(customer);
             return Response.accepted().build();
         } catch (final SQLException sqle) {
             return Response.status(Response.Status.CONFLICT).entity(sqle.getMessage()).build();
@@ -110,7 +150,11 @@ public class RmmService {
     @RolesAllowed({"WRITER"})
     public Response deleteService(@PathParam("customer") final String customer, @PathParam("service") final String service) {
         try {
-            getDao().deleteService(customer, service);
+            pool.call(dao -> {
+                dao.deleteService(customer, service);
+                return null;
+            });
+            SUMMARIES.invalidate(customer);
             return Response.accepted().build();
         } catch (final SQLException sqle) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(sqle.getMessage()).build();
@@ -123,10 +167,23 @@ public class RmmService {
     @RolesAllowed({"READER","WRITER"})
     public Response montlyCost(@PathParam("customer") final String customer) {
         try {
-            final int cost = getDao().monthlyCost(customer);
+            final int cost = pool.call(dao -> dao.monthlyCost(customer));
             return Response.ok(cost).build();
         } catch (final SQLException sqle) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(sqle.getMessage()).build();
         }
     }
+
+    @Path("/summary/{customer}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @GET
+    @RolesAllowed({"READER","WRITER"})
+    public Response getSummary(@PathParam("customer") final String customer) {
+        try {
+            final Summary summary = SUMMARIES.get(customer, () -> pool.call(dao -> dao.getSummary(customer)));
+            return Response.ok(summary).build();
+        } catch (final SQLException sqle) {
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(sqle.getMessage()).build();
+        }
+    }
 }
@@ -0,0 +1,553 @@
+package ninja;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Versioned schema upgrades for the RMM DB.
+ * <p>
+ * {@code createDB.sql} creates schema version 1. Each migration is applied once, in order, and recorded
+ * in the {@code schema_version} table. Schema changes follow expand/contract, so that the application
+ * keeps running throughout:
+ * <ol>
+ * <li>Version 2 (expand) copies {@code devices} and {@code services} into new, customer-partitioned tables
+ * while the application keeps using the old ones. A trigger logs the key of every row written during the
+ * copy; the log is replayed in batches, and only the last few entries are replayed while writes are
+ * locked out. The old table names are then replaced by compatibility views over the new tables, so an
+ * application that predates version 2 keeps working until the new one is deployed.</li>
+ * <li>Version 3 (contract) drops the compatibility views. Apply it once no pre-version 2 application
+ * is running.</li>
+ * </ol>
+ * Run with {@code mvn compile exec:java -Dexec.mainClass=ninja.SchemaMigrator [-Dexec.args=<version>]},
+ * using the same {@code rmm.db.*} properties as the application.
+ */
+public class SchemaMigrator {
+
+    /** Version created by createDB.sql. */
+    static final int BASELINE_VERSION = 1;
+
+    /** A single versioned schema change. */
+    private interface Migration {
+        int version();
+
+        String description();
+
+        void apply() throws SQLException;
+    }
+
+    private final Connection connection;
+
+    /** Hash partition count for customer-keyed tables (Postgres only). */
+    private final int partitions;
+
+    /** Rows copied or replayed per transaction. */
+    private final int batchSize;
+
+    /** Partitioning, covering indexes, triggers and table locks are only available on Postgres. */
+    private final boolean postgres;
+
+    private final List<Migration> migrations = Arrays.asList(
+            new Migration() {
+                @Override
+                public int version() {
+                    return 2;
+                }
+
+                @Override
+                public String description() {
+                    return "Partition devices and services by customer, store device type as smallint";
+                }
+
+                @Override
+                public void apply() throws SQLException {
+                    partitionByCustomer();
+                }
+            },
+            new Migration() {
+                @Override
+                public int version() {
+                    return 3;
+                }
+
+                @Override
+                public String description() {
+                    return "Drop version 1 compatibility views";
+                }
+
+                @Override
+                public void apply() throws SQLException {
+                    dropCompatibilityViews();
+                }
+            });
+
+    /**
+     * Constructor.
+     */
+    SchemaMigrator(final Connection connection, final int partitions, final int batchSize) throws SQLException {
+        this.connection = connection;
+        this.partitions = partitions;
+        this.batchSize = batchSize;
+        this.postgres = "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName());
+    }
+
+    /**
+     * Migrate to the version given as the only argument, or to the latest one.
+     */
+    public static void main(final String[] args) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(DBConfig.DB_URL, DBConfig.DB_USER, DBConfig.DB_PWD)) {
+            final SchemaMigrator migrator =
+                    new SchemaMigrator(connection, DBConfig.DB_PARTITIONS, DBConfig.MIGRATION_BATCH) {
+                        @Override
+                        void copied(final String table, final long rows) {
+                            System.out.println("Copied " + rows + " rows of " + table);
+                        }
+                    };
+            final int version = args.length > 0 ? migrator.migrate(Integer.parseInt(args[0])) : migrator.migrate();
+            System.out.println("Schema version " + version);
+        }
+    }
+
+    /**
+     * Apply all pending migrations.
+     *
+     * @return Schema version after migration.
+     * @throws SQLException
+     */
+    public int migrate() throws SQLException {
+        return migrate(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Apply pending migrations up to a target version.
+     *
+     * @param target Last version to apply.
+     * @return Schema version after migration.
+     * @throws SQLException
+     */
+    public int migrate(final int target) throws SQLException {
+        int current = currentVersion();
+        for (Migration migration : migrations) {
+            if (migration.version() <= current || migration.version() > target) {
+                continue;
+            }
+            connection.setAutoCommit(false);
+            try {
+                // Migrations commit their own intermediate batches; the version is recorded with the final step.
+                migration.apply();
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                    ps.setInt(1, migration.version());
+                    ps.setString(2, migration.description());
+                    ps.execute();
+                }
+                connection.commit();
+            } catch (final SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            current = migration.version();
+        }
+        return current;
+    }
+
+    /**
+     * Current schema version, creating the version table on first use.
+     */
+    int currentVersion() throws SQLException {
+        execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                "version integer NOT NULL PRIMARY KEY, " +
+                "description varchar(100) NOT NULL, " +
+                "applied timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT max(version) FROM schema_version")) {
+            rs.next();
+            final int version = rs.getInt(1);
+            return rs.wasNull() ? BASELINE_VERSION : version;
+        }
+    }
+
+    /**
+     * Called after each committed batch of the initial copy.
+     *
+     * @param table Source table.
+     * @param rows  Rows copied so far.
+     */
+    void copied(final String table, final long rows) throws SQLException {
+    }
+
+    /**
+     * Log the key of every row inserted, updated or deleted in {@code table} into {@code <table>_changes},
+     * which has a {@code seq} column followed by the key columns.
+     *
+     * @param table Source table.
+     * @param keys  Primary key columns.
+     * @throws SQLException
+     */
+    void captureChanges(final String table, final List<String> keys) throws SQLException {
+        if (!postgres) {
+            throw new SQLFeatureNotSupportedException("Change capture needs Postgres triggers");
+        }
+        final String keyList = String.join(", ", keys);
+        execute("CREATE OR REPLACE FUNCTION " + table + "_capture() RETURNS trigger AS $$ BEGIN " +
+                "IF TG_OP <> 'INSERT' THEN INSERT INTO " + table + "_changes (" + keyList + ") " +
+                "VALUES (" + qualified("OLD", keys) + "); END IF; " +
+                "IF TG_OP <> 'DELETE' THEN INSERT INTO " + table + "_changes (" + keyList + ") " +
+                "VALUES (" + qualified("NEW", keys) + "); END IF; " +
+                "RETURN NULL; END $$ LANGUAGE plpgsql");
+        execute("DROP TRIGGER IF EXISTS " + table + "_capture ON " + table);
+        execute("CREATE TRIGGER " + table + "_capture AFTER INSERT OR UPDATE OR DELETE ON " + table +
+                " FOR EACH ROW EXECUTE PROCEDURE " + table + "_capture()");
+    }
+
+    /**
+     * Stop logging writes to {@code table}, undoing {@link #captureChanges}.
+     *
+     * @param table Source table.
+     * @throws SQLException
+     */
+    void stopCapture(final String table) throws SQLException {
+        if (!postgres) {
+            throw new SQLFeatureNotSupportedException("Change capture needs Postgres triggers");
+        }
+        execute("DROP TRIGGER IF EXISTS " + table + "_capture ON " + table);
+        execute("DROP FUNCTION IF EXISTS " + table + "_capture()");
+    }
+
+    /**
+     * Version 2: copy devices and services into customer_devices and customer_services, hash-partitioned
+     * by customer, with device type stored as {@link Device.Type#getCode()}. Convert service_defs into
+     * service_prices with the same encoding (0 = any type), and leave compatibility views behind.
+     */
+    private void partitionByCustomer() throws SQLException {
+        // Leftovers of an interrupted run; Postgres drops the partitions along with the parent.
+        for (String table : Arrays.asList("customer_devices", "customer_services",
+                "devices_changes", "services_changes")) {
+            execute("DROP TABLE IF EXISTS " + table);
+        }
+        execute("CREATE TABLE customer_devices (" +
+                "customer varchar(45) NOT NULL, " +
+                "id varchar(45) NOT NULL, " +
+                "name varchar(45) NOT NULL, " +
+                "type smallint NOT NULL, " +
+                // On Postgres the primary key also covers the device list query.
+                "PRIMARY KEY (customer, id)" + (postgres ? " INCLUDE (type, name)" : "") + ")" +
+                partitionClause());
+        createPartitions("customer_devices", "devices");
+        execute("CREATE INDEX devices_customer_type_idx ON customer_devices (customer, type)");
+        execute("CREATE TABLE customer_services (" +
+                "customer varchar(45) NOT NULL, " +
+                "service varchar(45) NOT NULL, " +
+                "PRIMARY KEY (customer, service))" +
+                partitionClause());
+        createPartitions("customer_services", "services");
+
+        execute("CREATE TABLE devices_changes (seq bigserial PRIMARY KEY, " +
+                "customer varchar(45) NOT NULL, id varchar(45) NOT NULL)");
+        execute("CREATE TABLE services_changes (seq bigserial PRIMARY KEY, " +
+                "customer varchar(45) NOT NULL, service varchar(45) NOT NULL)");
+        captureChanges("devices", Arrays.asList("customer", "id"));
+        captureChanges("services", Arrays.asList("customer", "service"));
+        connection.commit();
+        try {
+            copyAndCutOver();
+        } catch (final SQLException | RuntimeException e) {
+            // The triggers are committed, so rolling back leaves them logging every write to the live tables.
+            connection.rollback();
+            try {
+                stopCapture("devices");
+                stopCapture("services");
+                execute("DROP TABLE devices_changes");
+                execute("DROP TABLE services_changes");
+                connection.commit();
+            } catch (final SQLException cleanup) {
+                e.addSuppressed(cleanup);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Copy devices and services while change capture is on, then replace them with compatibility views in
+     * one transaction.
+     */
+    private void copyAndCutOver() throws SQLException {
+        // Every write from here on is logged, so the copy does not need a consistent snapshot.
+        final List<String> deviceColumns = Arrays.asList("customer", "id", "name", "type");
+        final List<String> serviceColumns = Arrays.asList("customer", "service");
+        copyInBatches("devices", "customer_devices", deviceColumns);
+        copyInBatches("services", "customer_services", serviceColumns);
+
+        // Replay writes made during the copy until the backlog fits in one batch.
+        int replayed;
+        do {
+            replayed = replayChanges("devices", "customer_devices", deviceColumns, true) +
+                    replayChanges("services", "customer_services", serviceColumns, true);
+        } while (replayed >= batchSize);
+
+        // Cut-over. Readers keep using the old tables until the views replace them. With writers locked out,
+        // the final replay only drains what was logged since the last pass.
+        if (postgres) {
+            execute("LOCK TABLE devices, services, service_defs IN EXCLUSIVE MODE");
+        }
+        do {
+            replayed = replayChanges("devices", "customer_devices", deviceColumns, false) +
+                    replayChanges("services", "customer_services", serviceColumns, false);
+        } while (replayed > 0);
+
+        // service_defs is tiny, convert it here.
+        execute("CREATE TABLE service_prices (" +
+                "service varchar(45) NOT NULL, " +
+                "type smallint NOT NULL DEFAULT 0, " +
+                "price integer NOT NULL, " +
+                "PRIMARY KEY (service, type))");
+        execute("INSERT INTO service_prices (service, type, price) " +
+                "SELECT service, CASE WHEN type = '' THEN 0 ELSE " + typeCode("type") + " END, price FROM service_defs");
+
+        // Dropping the tables drops the capture triggers too.
+        for (String table : Arrays.asList("devices", "services", "service_defs")) {
+            execute("DROP TABLE " + table);
+        }
+        execute("DROP TABLE devices_changes");
+        execute("DROP TABLE services_changes");
+        if (postgres) {
+            execute("DROP FUNCTION devices_capture()");
+            execute("DROP FUNCTION services_capture()");
+        }
+        createCompatibilityViews();
+    }
+
+    /**
+     * Expose the new tables under their version 1 names and encoding. On Postgres the views are also
+     * writable: services is a plain projection, devices uses an INSTEAD OF trigger.
+     */
+    private void createCompatibilityViews() throws SQLException {
+        execute("CREATE VIEW devices AS SELECT customer, id, name, " + typeName("type", false) + " AS type " +
+                "FROM customer_devices");
+        execute("CREATE VIEW services AS SELECT customer, service FROM customer_services");
+        execute("CREATE VIEW service_defs AS SELECT service, " + typeName("type", true) + " AS type, price " +
+                "FROM service_prices");
+        if (!postgres) {
+            return;
+        }
+        execute("CREATE OR REPLACE FUNCTION devices_compat() RETURNS trigger AS $$ BEGIN " +
+                "IF TG_OP = 'INSERT' THEN " +
+                "INSERT INTO customer_devices (customer, id, name, type) " +
+                "VALUES (NEW.customer, NEW.id, NEW.name, " + typeCode("NEW.type") + "); RETURN NEW; " +
+                "ELSIF TG_OP = 'UPDATE' THEN " +
+                "UPDATE customer_devices SET customer = NEW.customer, id = NEW.id, name = NEW.name, " +
+                "type = " + typeCode("NEW.type") + " WHERE customer = OLD.customer AND id = OLD.id; RETURN NEW; " +
+                "ELSE DELETE FROM customer_devices WHERE customer = OLD.customer AND id = OLD.id; RETURN OLD; " +
+                "END IF; END $$ LANGUAGE plpgsql");
+        execute("CREATE TRIGGER devices_compat INSTEAD OF INSERT OR UPDATE OR DELETE ON devices " +
+                "FOR EACH ROW EXECUTE PROCEDURE devices_compat()");
+    }
+
+    /**
+     * Version 3: drop the views left by version 2.
+     */
+    private void dropCompatibilityViews() throws SQLException {
+        for (String view : Arrays.asList("devices", "services", "service_defs")) {
+            execute("DROP VIEW IF EXISTS " + view);
+        }
+        if (postgres) {
+            execute("DROP FUNCTION IF EXISTS devices_compat()");
+        }
+    }
+
+    /**
+     * Copy a table, {@link #batchSize} rows per transaction.
+     * The first two columns must be the primary key, and are used to page through the source.
+     *
+     * @param source     Source table name.
+     * @param target     Target table name.
+     * @param columns    Columns to copy. A {@code type} column is converted to its code.
+     */
+    private void copyInBatches(final String source, final String target, final List<String> columns)
+            throws SQLException {
+        final String selectList = String.join(", ", converted(columns));
+        final String key = "(" + columns.get(0) + ", " + columns.get(1) + ")";
+        final String order = " ORDER BY " + columns.get(0) + ", " + columns.get(1) + " LIMIT ?";
+        final String first = "SELECT " + selectList + " FROM " + source + order;
+        // Row comparison, so each batch is an index range seek from the last key.
+        final String next = "SELECT " + selectList + " FROM " + source + " WHERE " + key + " > (?, ?)" + order;
+        final String insert = "INSERT INTO " + target + " (" + String.join(", ", columns) + ") VALUES (" +
+                String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+
+        String lastKey0 = null;
+        String lastKey1 = null;
+        long copied = 0;
+        try (PreparedStatement firstPs = connection.prepareStatement(first);
+             PreparedStatement nextPs = connection.prepareStatement(next);
+             PreparedStatement insertPs = connection.prepareStatement(insert)) {
+            while (true) {
+                final PreparedStatement select;
+                if (lastKey0 == null) {
+                    select = firstPs;
+                    select.setInt(1, batchSize);
+                } else {
+                    select = nextPs;
+                    select.setString(1, lastKey0);
+                    select.setString(2, lastKey1);
+                    select.setInt(3, batchSize);
+                }
+                int rows = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    final ResultSetMetaData meta = rs.getMetaData();
+                    while (rs.next()) {
+                        for (int i = 1; i <= columns.size(); i++) {
+                            insertPs.setObject(i, rs.getObject(i), meta.getColumnType(i));
+                        }
+                        insertPs.addBatch();
+                        lastKey0 = rs.getString(1);
+                        lastKey1 = rs.getString(2);
+                        rows++;
+                    }
+                }
+                if (rows == 0) {
+                    return;
+                }
+                insertPs.executeBatch();
+                connection.commit();
+                copied += rows;
+                copied(source, copied);
+                if (rows < batchSize) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay up to {@link #batchSize} logged writes: every logged key is deleted from the target and copied
+     * again from the source, if it still exists there. Entries are removed from the log one by one, as
+     * writes that commit later can hold lower sequence numbers.
+     *
+     * @param source  Source table, logging into {@code <source>_changes}.
+     * @param target  Target table.
+     * @param columns Columns to copy, primary key first. A {@code type} column is converted to its code.
+     * @param commit  Whether to commit the batch, or leave it to the enclosing cut-over transaction.
+     * @return Number of log entries replayed.
+     */
+    private int replayChanges(final String source, final String target, final List<String> columns,
+                              final boolean commit) throws SQLException {
+        final String key0 = columns.get(0);
+        final String key1 = columns.get(1);
+        final String keyMatch = " WHERE " + key0 + " = ? AND " + key1 + " = ?";
+
+        final List<Long> seqs = new ArrayList<>();
+        final Set<List<String>> keys = new LinkedHashSet<>();
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT seq, " + key0 + ", " + key1 + " FROM " + source + "_changes ORDER BY seq LIMIT ?")) {
+            ps.setInt(1, batchSize);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    seqs.add(rs.getLong(1));
+                    keys.add(Arrays.asList(rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+        if (seqs.isEmpty()) {
+            return 0;
+        }
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + target + keyMatch);
+             PreparedStatement insert = connection.prepareStatement(
+                     "INSERT INTO " + target + " (" + String.join(", ", columns) + ") " +
+                             "SELECT " + String.join(", ", converted(columns)) + " FROM " + source + keyMatch);
+             PreparedStatement done = connection.prepareStatement(
+                     "DELETE FROM " + source + "_changes WHERE seq = ?")) {
+            for (List<String> key : keys) {
+                delete.setString(1, key.get(0));
+                delete.setString(2, key.get(1));
+                delete.addBatch();
+                insert.setString(1, key.get(0));
+                insert.setString(2, key.get(1));
+                insert.addBatch();
+            }
+            for (Long seq : seqs) {
+                done.setLong(1, seq);
+                done.addBatch();
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+            done.executeBatch();
+        }
+        if (commit) {
+            connection.commit();
+        }
+        return seqs.size();
+    }
+
+    /**
+     * Select list for copying columns to the version 2 encoding: a {@code type} column is converted to its
+     * code. Copy and replay both use it, so an unknown type name fails either way, on the NOT NULL constraint.
+     */
+    private static List<String> converted(final List<String> columns) {
+        final List<String> select = new ArrayList<>(columns);
+        if (columns.contains("type")) {
+            select.set(columns.indexOf("type"), typeCode("type"));
+        }
+        return select;
+    }
+
+    /** SQL expression mapping a {@link Device.Type} name column to its code. Unknown names map to NULL. */
+    private static String typeCode(final String column) {
+        final StringBuilder sql = new StringBuilder("CASE ").append(column);
+        for (Device.Type type : Device.Type.values()) {
+            sql.append(" WHEN '").append(type.name()).append("' THEN ").append(type.getCode());
+        }
+        return sql.append(" END").toString();
+    }
+
+    /**
+     * SQL expression mapping a {@link Device.Type} code column back to the version 1 name.
+     *
+     * @param column Code column.
+     * @param any    Whether code 0 stands for any type, named ''.
+     */
+    private static String typeName(final String column, final boolean any) {
+        final StringBuilder sql = new StringBuilder("CAST(CASE ").append(column);
+        if (any) {
+            sql.append(" WHEN 0 THEN ''");
+        }
+        for (Device.Type type : Device.Type.values()) {
+            sql.append(" WHEN ").append(type.getCode()).append(" THEN '").append(type.name()).append("'");
+        }
+        return sql.append(" END AS varchar(45))").toString();
+    }
+
+    private static String qualified(final String row, final List<String> columns) {
+        final List<String> qualified = new ArrayList<>();
+        for (String column : columns) {
+            qualified.add(row + "." + column);
+        }
+        return String.join(", ", qualified);
+    }
+
+    private String partitionClause() {
+        return postgres ? " PARTITION BY HASH (customer)" : "";
+    }
+
+    /** Create hash partitions named {@code <prefix>_p<n>}. */
+    private void createPartitions(final String table, final String prefix) throws SQLException {
+        if (!postgres) {
+            return;
+        }
+        for (int i = 0; i < partitions; i++) {
+            execute("CREATE TABLE " + prefix + "_p" + i + " PARTITION OF " + table + " " +
+                    "FOR VALUES WITH (MODULUS " + partitions + ", REMAINDER " + i + ")");
+        }
+    }
+
+    private void execute(final String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
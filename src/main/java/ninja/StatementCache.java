@@ -0,0 +1,79 @@
+package ninja;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of prepared statements for a single connection, keyed by SQL.
+ * <p>
+ * Statements handed out stay owned by the cache: callers close their result sets but never the statement.
+ * Reusing the same statement lets the driver keep it prepared on the server, skipping parse and plan.
+ * Not thread-safe, same as the connection it wraps.
+ */
+class StatementCache implements AutoCloseable {
+
+    private final Connection connection;
+
+    /** Access-ordered, so the eldest entry is the least recently used one. */
+    private final Map<String, PreparedStatement> statements;
+
+    /**
+     * Constructor.
+     */
+    StatementCache(final Connection connection, final int capacity) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (final SQLException sqle) {
+                    // Dropped on purpose: the statement leaves the cache either way. If the connection is
+                    // broken, the next statement run on it fails and reports that.
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get the cached statement for a query, preparing it on first use.
+     *
+     * @param sql Query.
+     * @return Statement, with parameters from any previous use still set.
+     * @throws SQLException
+     */
+    PreparedStatement prepare(final String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null || ps.isClosed()) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * Close all cached statements.
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (final SQLException sqle) {
+                failure = sqle;
+            }
+        }
+        statements.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ninja;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/** Customer overview: device counts, services and monthly cost. */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class Summary {
+
+    /** Number of devices of each type, including zero counts. */
+    private Map<Device.Type, Integer> devices;
+
+    /** Subscribed services. */
+    private List<String> services;
+
+    /** Monthly total cost. */
+    private int cost;
+}
@@ -0,0 +1,102 @@
+package ninja;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Short-lived cache of customer summaries, invalidated by writes.
+ * <p>
+ * A summary loaded concurrently with a write may predate it, so it is only stored if no invalidation
+ * happened while it was loading. Invalidation leaves a tombstone carrying a fresh generation number, which
+ * a load that started earlier cannot match. A tombstone is swept once ttl has passed: any load that started
+ * before it stores a summary that is expired by then, so it is never served.
+ */
+class SummaryCache {
+
+    /** Loads a summary on a cache miss. */
+    interface Loader {
+        Summary load() throws SQLException;
+    }
+
+    /** A summary, or a tombstone if summary is null. Either can be swept once expired. */
+    private static final class Entry {
+        private final Summary summary;
+        private final long expires;
+        private final long generation;
+
+        private Entry(final Summary summary, final long expires, final long generation) {
+            this.summary = summary;
+            this.expires = expires;
+            this.generation = generation;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Source of tombstone generations, never reused. */
+    private final AtomicLong generations = new AtomicLong();
+
+    /** How long a summary is served, in milliseconds. */
+    private final long ttl;
+
+    /** Expired summaries are swept once the cache grows past this many customers. */
+    private final int sweepSize;
+
+    /** Current time in milliseconds. */
+    private final LongSupplier clock;
+
+    /**
+     * Constructor.
+     */
+    SummaryCache(final long ttl, final int sweepSize, final LongSupplier clock) {
+        this.ttl = ttl;
+        this.sweepSize = sweepSize;
+        this.clock = clock;
+    }
+
+    /**
+     * Get a customer's summary, loading it if missing or expired.
+     *
+     * @param customer Customer ID.
+     * @param loader   Loads the summary from the DB.
+     * @return Summary, possibly up to ttl old.
+     * @throws SQLException
+     */
+    Summary get(final String customer, final Loader loader) throws SQLException {
+        // Read the clock after the entry: a summary stored after its tombstone was swept is then expired by now.
+        final Entry cached = entries.get(customer);
+        final long now = clock.getAsLong();
+        if (cached != null && cached.summary != null && cached.expires > now) {
+            return cached.summary;
+        }
+        final long generation = cached == null ? 0 : cached.generation;
+        final Summary summary = loader.load();
+        if (entries.size() > sweepSize) {
+            entries.values().removeIf(entry -> entry.expires <= now);
+        }
+        // A missing entry was never invalidated, or invalidated at least ttl ago: this load started before
+        // now, so a summary stored for it expires no later than now + ttl.
+        entries.compute(customer, (key, current) ->
+                current == null || current.generation == generation
+                        ? new Entry(summary, now + ttl, generation)
+                        : current);
+        return summary;
+    }
+
+    /**
+     * Drop a customer's summary, including one being loaded right now.
+     *
+     * @param customer Customer ID.
+     */
+    void invalidate(final String customer) {
+        entries.put(customer, new Entry(null, clock.getAsLong() + ttl, generations.incrementAndGet()));
+    }
+
+    /** Number of customers with a summary or tombstone. */
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,80 @@
+package ninja;
+
+import org.h2.api.Trigger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Migrator for the H2 test DB, capturing changes with a Java trigger instead of a Postgres one.
+ */
+class H2SchemaMigrator extends SchemaMigrator {
+
+    private final Connection connection;
+
+    H2SchemaMigrator(final Connection connection, final int partitions, final int batchSize) throws SQLException {
+        super(connection, partitions, batchSize);
+        this.connection = connection;
+    }
+
+    @Override
+    void captureChanges(final String table, final List<String> keys) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TRIGGER IF EXISTS " + table + "_capture");
+            statement.execute("CREATE TRIGGER " + table + "_capture AFTER INSERT, UPDATE, DELETE ON " + table +
+                    " FOR EACH ROW CALL \"" + Capture.class.getName() + "\"");
+        }
+    }
+
+    @Override
+    void stopCapture(final String table) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TRIGGER IF EXISTS " + table + "_capture");
+        }
+    }
+
+    /** Logs the first two columns of every written row, which must be the key. */
+    public static class Capture implements Trigger {
+
+        private String insert;
+
+        @Override
+        public void init(final Connection conn, final String schemaName, final String triggerName,
+                         final String tableName, final boolean before, final int type) throws SQLException {
+            final String log = tableName + "_changes";
+            try (Statement statement = conn.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT * FROM " + log + " WHERE 1 = 0")) {
+                // Column 1 is seq
+                final ResultSetMetaData meta = rs.getMetaData();
+                insert = "INSERT INTO " + log + " (" + meta.getColumnName(2) + ", " + meta.getColumnName(3) + ") " +
+                        "VALUES (?, ?)";
+            }
+        }
+
+        @Override
+        public void fire(final Connection conn, final Object[] oldRow, final Object[] newRow) throws SQLException {
+            try (PreparedStatement ps = conn.prepareStatement(insert)) {
+                for (Object[] row : new Object[][]{oldRow, newRow}) {
+                    if (row != null) {
+                        ps.setObject(1, row[0]);
+                        ps.setObject(2, row[1]);
+                        ps.execute();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ninja;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps a connection to track the statements and result sets opened through it.
+ */
+class LeakDetector {
+
+    private final List<Statement> statements = new ArrayList<>();
+    private final List<ResultSet> resultSets = new ArrayList<>();
+
+    /**
+     * Wrap a connection. Statements and result sets obtained from the wrapper are tracked.
+     */
+    Connection wrap(final Connection connection) {
+        return proxy(Connection.class, connection);
+    }
+
+    /** Number of statements prepared so far. */
+    int prepared() {
+        return statements.size();
+    }
+
+    /** Statements not closed yet. */
+    long openStatements() throws Exception {
+        long open = 0;
+        for (Statement statement : statements) {
+            if (!statement.isClosed()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /** Result sets not closed yet. */
+    long openResultSets() throws Exception {
+        long open = 0;
+        for (ResultSet resultSet : resultSets) {
+            if (!resultSet.isClosed()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T proxy(final Class<T> type, final T target) {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            final Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof PreparedStatement) {
+                statements.add((PreparedStatement) result);
+                return proxy(PreparedStatement.class, (PreparedStatement) result);
+            }
+            if (result instanceof Statement) {
+                statements.add((Statement) result);
+                return proxy(Statement.class, (Statement) result);
+            }
+            if (result instanceof ResultSet) {
+                resultSets.add((ResultSet) result);
+            }
+            return result;
+        };
+        return (T) Proxy.newProxyInstance(LeakDetector.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
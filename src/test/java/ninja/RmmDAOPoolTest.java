@@ -0,0 +1,134 @@
+package ninja;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RmmDAOPoolTest {
+
+    private static final String MEMORY_DB = "jdbc:h2:mem:pool";
+
+    /** Every connection the pool opened, in order. */
+    private final List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
+
+    private final RmmDAOPool pool = new RmmDAOPool(this::open, 2, 100);
+
+    private RmmDAO open() throws SQLException {
+        final Connection connection = DriverManager.getConnection(MEMORY_DB);
+        connections.add(connection);
+        return new RmmDAO(connection);
+    }
+
+    @After
+    public void clean() throws Exception {
+        pool.close();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        final RmmDAO first = pool.call(dao -> dao);
+        assertSame(first, pool.call(dao -> dao));
+        assertEquals(1, connections.size());
+        assertEquals(1, pool.idle());
+    }
+
+    @Test
+    public void testFailureKeepsWorkingConnection() throws Exception {
+        final RmmDAO first = pool.call(dao -> dao);
+        try {
+            pool.call(dao -> {
+                throw new SQLException("Constraint violated");
+            });
+            fail();
+        } catch (final SQLException sqle) {
+            assertEquals("Constraint violated", sqle.getMessage());
+        }
+        assertSame(first, pool.call(dao -> dao));
+    }
+
+    @Test
+    public void testBrokenConnectionReplaced() throws Exception {
+        final RmmDAO first = pool.call(dao -> dao);
+        try {
+            pool.call(dao -> {
+                connections.get(0).close();
+                throw new SQLException("Connection lost");
+            });
+            fail();
+        } catch (final SQLException sqle) {
+            assertEquals("Connection lost", sqle.getMessage());
+        }
+        assertEquals(0, pool.idle());
+        final RmmDAO second = pool.call(dao -> dao);
+        assertNotSame(first, second);
+        assertTrue(second.isValid());
+        assertEquals(2, connections.size());
+    }
+
+    @Test
+    public void testExhausted() throws Exception {
+        final CountDownLatch busy = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<RmmDAO>> holders = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                holders.add(executor.submit(() -> pool.call(dao -> {
+                    busy.countDown();
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        throw new SQLException(e);
+                    }
+                    return dao;
+                })));
+            }
+            busy.await();
+            try {
+                pool.call(dao -> dao);
+                fail();
+            } catch (final SQLTimeoutException sqle) {
+                // Both connections in use
+            }
+            release.countDown();
+            assertNotSame(holders.get(0).get(), holders.get(1).get());
+            assertEquals(2, pool.idle());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        pool.call(dao -> dao);
+        pool.close();
+        assertTrue(connections.get(0).isClosed());
+        try {
+            pool.call(dao -> dao);
+            fail();
+        } catch (final SQLException sqle) {
+            assertEquals("Pool is closed", sqle.getMessage());
+        }
+    }
+}
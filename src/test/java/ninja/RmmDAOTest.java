@@ -9,12 +9,16 @@ import org.junit.rules.ExpectedException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class RmmDAOTest {
 
@@ -28,15 +32,31 @@ public class RmmDAOTest {
      */
     private RmmDAO dao;
 
+    /**
+     * Tracks JDBC resources opened by {@link #dao}.
+     */
+    private LeakDetector leaks;
+
     @Before
     public void init() throws SQLException, IOException {
         runScript("/createDB.sql");
-        dao = new RmmDAO(MEMORY_DB, "", "");
+        leaks = new LeakDetector();
+        dao = new RmmDAO(leaks.wrap(DriverManager.getConnection(MEMORY_DB)));
+        try (Connection connection = DriverManager.getConnection(MEMORY_DB)) {
+            new H2SchemaMigrator(connection, 4, 100).migrate();
+        }
     }
 
     @After
-    public void clean() throws SQLException, IOException {
-        runScript("/cleanUp.sql");
+    public void clean() throws Exception {
+        final long openResultSets = leaks.openResultSets();
+        try {
+            dao.close();
+        } finally {
+            runScript("/cleanUp.sql");
+        }
+        assertEquals("Unclosed result sets", 0, openResultSets);
+        assertEquals("Unclosed statements", 0, leaks.openStatements());
     }
 
     private void runScript(final String script) throws SQLException, IOException {
@@ -169,4 +189,85 @@ public class RmmDAOTest {
 
         assertEquals(71, dao.monthlyCost("MegaCorp"));
     }
+
+    @Test
+    public void testMonthlyWithoutServices() throws SQLException {
+        dao.addDevices("MegaCorp", Arrays.asList(
+                Device.builder().id("a").type(Device.Type.MAC).name("Mac A").build(),
+                Device.builder().id("b").type(Device.Type.WINDOWS_SERVER).name("Server").build()
+        ));
+
+        // Devices are only billed along with a service
+        assertEquals(0, dao.monthlyCost("MegaCorp"));
+    }
+
+    @Test
+    public void testSummary() throws SQLException {
+        final Map<Device.Type, Integer> empty = new EnumMap<>(Device.Type.class);
+        empty.put(Device.Type.WINDOWS_WORKSTATION, 0);
+        empty.put(Device.Type.WINDOWS_SERVER, 0);
+        empty.put(Device.Type.MAC, 0);
+        assertEquals(new Summary(empty, Collections.emptyList(), 0), dao.getSummary("new_customer"));
+
+        dao.addDevices("MegaCorp", Arrays.asList(
+                Device.builder().id("a").type(Device.Type.MAC).name("Mac A").build(),
+                Device.builder().id("b").type(Device.Type.MAC).name("Mac B").build(),
+                Device.builder().id("c").type(Device.Type.MAC).name("Mac C").build(),
+                Device.builder().id("d").type(Device.Type.WINDOWS_SERVER).name("Server").build()
+        ));
+        dao.addServices("MegaCorp", Arrays.asList("Antivirus", "Cloudberry", "TeamViewer"));
+
+        final Map<Device.Type, Integer> counts = new EnumMap<>(empty);
+        counts.put(Device.Type.MAC, 3);
+        counts.put(Device.Type.WINDOWS_SERVER, 1);
+        assertEquals(
+                new Summary(counts, Arrays.asList("Antivirus", "Cloudberry", "TeamViewer"), 4 * 8 + 3 * 7 + 5),
+                dao.getSummary("MegaCorp"));
+    }
+
+    @Test
+    public void testStatementReuse() throws SQLException {
+        dao.addDevices("MegaCorp", Collections.singletonList(
+                Device.builder().id("a").type(Device.Type.MAC).name("Mac A").build()));
+        for (int i = 0; i < 10; i++) {
+            dao.getDevices("MegaCorp");
+            dao.getServices("MegaCorp");
+            dao.monthlyCost("MegaCorp");
+        }
+        assertEquals(4, leaks.prepared());
+    }
+
+    @Test
+    public void testQueryPlans() throws SQLException {
+        final Device.Type[] types = Device.Type.values();
+        for (int c = 0; c < 100; c++) {
+            final List<Device> devices = new ArrayList<>();
+            for (int d = 0; d < 100; d++) {
+                devices.add(Device.builder().id("d" + d).type(types[d % types.length]).name("Device " + d).build());
+            }
+            dao.addDevices("customer" + c, devices);
+            dao.addServices("customer" + c, Arrays.asList("Antivirus", "Cloudberry"));
+        }
+
+        assertIndexed(RmmDAO.DEVICES_QUERY, 1);
+        assertIndexed(RmmDAO.COUNT_QUERY, 1);
+        assertIndexed(RmmDAO.COST_QUERY, 2);
+        assertIndexed(RmmDAO.SUMMARY_QUERY, 3);
+        assertEquals(100 * (4 + 3) + 67 * 5 + 33 * 7, dao.monthlyCost("customer7"));
+    }
+
+    /** Verify that none of the tables in a query is scanned in full. */
+    private void assertIndexed(final String query, final int params) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(MEMORY_DB);
+             PreparedStatement ps = connection.prepareStatement("EXPLAIN " + query)) {
+            for (int i = 1; i <= params; i++) {
+                ps.setString(i, "customer7");
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                final String plan = rs.getString(1);
+                assertFalse(plan, plan.contains("tableScan"));
+            }
+        }
+    }
 }
@@ -0,0 +1,197 @@
+package ninja;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the migration against a real Postgres, with its triggers, partitioning and covering indexes.
+ * Skipped unless rmm.db.url is set to a Postgres database, e.g.
+ * {@code mvn test -Drmm.db.url=jdbc:postgresql://localhost/ninja -Drmm.db.user=... -Drmm.db.password=...}.
+ * Works in a schema of its own, dropped afterwards.
+ */
+public class SchemaMigratorPostgresTest {
+
+    private static final String URL = System.getProperty("rmm.db.url", "");
+
+    private static final String SCHEMA = "rmm_migration_test";
+
+    private static final int PARTITIONS = 16;
+
+    private static final int CUSTOMERS = 2000;
+
+    private static final int DEVICES = 10;
+
+    /** Partitions read by a query plan. */
+    private static final Pattern PARTITION = Pattern.compile(" on (devices_p\\d+)");
+
+    private Connection connection;
+
+    @Before
+    public void init() throws SQLException, IOException {
+        assumeTrue("rmm.db.url is not a Postgres database", URL.startsWith("jdbc:postgresql:"));
+        try (Connection admin = DriverManager.getConnection(URL, DBConfig.DB_USER, DBConfig.DB_PWD);
+             Statement statement = admin.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            statement.execute("CREATE SCHEMA " + SCHEMA);
+        }
+        connection = connect();
+        try (InputStream stream = RmmDAO.class.getResourceAsStream("/createDB.sql")) {
+            final Scanner scanner = new Scanner(stream).useDelimiter(";");
+            while (scanner.hasNext()) {
+                final String sql = scanner.next().trim();
+                if (!sql.isEmpty()) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(sql);
+                    }
+                }
+            }
+        }
+    }
+
+    @After
+    public void clean() throws SQLException {
+        if (connection == null) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA " + SCHEMA + " CASCADE");
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        final Properties properties = new Properties();
+        properties.setProperty("user", DBConfig.DB_USER);
+        properties.setProperty("password", DBConfig.DB_PWD);
+        properties.setProperty("currentSchema", SCHEMA);
+        return DriverManager.getConnection(URL, properties);
+    }
+
+    @Test
+    public void testMigrate() throws SQLException {
+        final Device.Type[] types = Device.Type.values();
+        try (PreparedStatement devices = connection.prepareStatement(
+                "INSERT INTO devices (customer, id, type, name) VALUES (?, ?, ?, ?)");
+             PreparedStatement services = connection.prepareStatement(
+                     "INSERT INTO services (customer, service) VALUES (?, ?)")) {
+            for (int c = 0; c < CUSTOMERS; c++) {
+                for (int d = 0; d < DEVICES; d++) {
+                    devices.setString(1, "customer" + c);
+                    devices.setString(2, "d" + d);
+                    devices.setString(3, types[d % types.length].name());
+                    devices.setString(4, "Device " + d);
+                    devices.addBatch();
+                }
+                for (String service : Arrays.asList("Antivirus", "Cloudberry")) {
+                    services.setString(1, "customer" + c);
+                    services.setString(2, service);
+                    services.addBatch();
+                }
+            }
+            devices.executeBatch();
+            services.executeBatch();
+        }
+
+        // Write through another connection after the first batch, to rows copied already and rows not copied yet
+        final SchemaMigrator migrator = new SchemaMigrator(connection, PARTITIONS, 1000) {
+            private boolean written;
+
+            @Override
+            void copied(final String table, final long rows) throws SQLException {
+                if (written) {
+                    return;
+                }
+                written = true;
+                try (Connection writer = connect();
+                     Statement statement = writer.createStatement()) {
+                    statement.execute("UPDATE devices SET name = 'Renamed', type = 'MAC' " +
+                            "WHERE customer = 'customer0' AND id = 'd0'");
+                    statement.execute("DELETE FROM devices WHERE customer = 'customer1999' AND id = 'd1'");
+                    statement.execute("INSERT INTO devices (customer, id, type, name) " +
+                            "VALUES ('customer1999', 'new', 'WINDOWS_SERVER', 'New')");
+                    statement.execute("DELETE FROM services WHERE customer = 'customer1999' AND service = 'Cloudberry'");
+                }
+            }
+        };
+        assertEquals(2, migrator.migrate(2));
+
+        final RmmDAO dao = new RmmDAO(connect());
+        try {
+            assertEquals(Device.builder().id("d0").type(Device.Type.MAC).name("Renamed").build(),
+                    dao.getDevices("customer0").get(0));
+            assertEquals(DEVICES, dao.getDevices("customer1999").size());
+            assertTrue(dao.getDevices("customer1999").contains(
+                    Device.builder().id("new").type(Device.Type.WINDOWS_SERVER).name("New").build()));
+            assertEquals(Arrays.asList("Antivirus"), dao.getServices("customer1999"));
+
+            // Capture triggers are gone, and the previous application writes through the compatibility view
+            try (Statement statement = connection.createStatement()) {
+                try (ResultSet rs = statement.executeQuery(
+                        "SELECT count(*) FROM pg_trigger WHERE tgname LIKE '%\\_capture'")) {
+                    rs.next();
+                    assertEquals(0, rs.getInt(1));
+                }
+                statement.execute("INSERT INTO devices (customer, id, type, name) " +
+                        "VALUES ('customer5', 'legacy', 'WINDOWS_WORKSTATION', 'Legacy')");
+                statement.execute("UPDATE devices SET type = 'MAC' WHERE customer = 'customer5' AND id = 'legacy'");
+                try (ResultSet rs = statement.executeQuery(
+                        "SELECT type FROM devices WHERE customer = 'customer5' AND id = 'legacy'")) {
+                    rs.next();
+                    assertEquals("MAC", rs.getString(1));
+                }
+            }
+            assertTrue(dao.getDevices("customer5").contains(
+                    Device.builder().id("legacy").type(Device.Type.MAC).name("Legacy").build()));
+
+            // Index-only scans need an up-to-date visibility map
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("VACUUM ANALYZE customer_devices");
+            }
+            assertPrunedIndexOnly(RmmDAO.DEVICES_QUERY);
+            assertPrunedIndexOnly(RmmDAO.COUNT_QUERY);
+
+            // Contract
+            assertEquals(3, migrator.migrate());
+            assertFalse(connection.getMetaData().getTables(null, SCHEMA, "devices", null).next());
+            assertEquals(DEVICES, dao.getDevices("customer0").size());
+        } finally {
+            dao.close();
+        }
+    }
+
+    /** Verify that a customer query reads a single partition, from the index alone. */
+    private void assertPrunedIndexOnly(final String query) throws SQLException {
+        final StringBuilder plan = new StringBuilder();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("EXPLAIN " + query.replace("?", "'customer7'"))) {
+            while (rs.next()) {
+                plan.append(rs.getString(1)).append('\n');
+            }
+        }
+        final Set<String> partitions = new HashSet<>();
+        final Matcher matcher = PARTITION.matcher(plan);
+        while (matcher.find()) {
+            partitions.add(matcher.group(1));
+        }
+        assertEquals(plan.toString(), 1, partitions.size());
+        assertTrue(plan.toString(), plan.indexOf("Index Only Scan") >= 0);
+    }
+}
@@ -0,0 +1,238 @@
+package ninja;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class SchemaMigratorTest {
+
+    private static final String MEMORY_DB = "jdbc:h2:mem:migration";
+
+    /**
+     * Keeps the in-memory DB alive for the duration of a test.
+     */
+    private Connection connection;
+
+    @Before
+    public void init() throws SQLException, IOException {
+        connection = DriverManager.getConnection(MEMORY_DB);
+        runScript("/createDB.sql");
+    }
+
+    @After
+    public void clean() throws SQLException, IOException {
+        runScript("/cleanUp.sql");
+        connection.close();
+    }
+
+    private void runScript(final String script) throws SQLException, IOException {
+        try (InputStream stream = RmmDAO.class.getResourceAsStream(script)) {
+            final Scanner scanner = new Scanner(stream).useDelimiter(";");
+            while (scanner.hasNext()) {
+                try (PreparedStatement ps = connection.prepareStatement(scanner.next())) {
+                    ps.execute();
+                }
+            }
+        }
+    }
+
+    private void addDevices(final Connection connection, final String customer, final List<String> types)
+            throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "INSERT INTO devices (customer, id, type, name) VALUES (?, ?, ?, ?)")) {
+            int i = 0;
+            for (String type : types) {
+                ps.setString(1, customer);
+                ps.setString(2, String.valueOf((char) ('a' + i)));
+                ps.setString(3, type);
+                ps.setString(4, type + " " + i++);
+                ps.execute();
+            }
+        }
+    }
+
+    private void addServices(final Connection connection, final String customer, final List<String> services)
+            throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "INSERT INTO services (customer, service) VALUES (?, ?)")) {
+            for (String service : services) {
+                ps.setString(1, customer);
+                ps.setString(2, service);
+                ps.execute();
+            }
+        }
+    }
+
+    /** Version 1 cost query, as run by an application that predates version 2. */
+    private int legacyCost(final String customer) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "select sum(costs.per_device + (select price from service_defs where service = 'Device')) as total " +
+                        "FROM (SELECT d.id, sum(sd.price) as per_device " +
+                        "FROM devices d, services s " +
+                        "INNER JOIN service_defs sd ON s.service = sd.service " +
+                        "WHERE d.customer = ? and s.customer = ? and " +
+                        "(sd.type = '' OR sd.type = d.type) group by d.id) as costs")) {
+            ps.setString(1, customer);
+            ps.setString(2, customer);
+            try (ResultSet result = ps.executeQuery()) {
+                result.next();
+                return result.getInt("total");
+            }
+        }
+    }
+
+    @Test
+    public void testMigrate() throws SQLException {
+        // Version 1 data, stored with type names
+        final List<String> types = Arrays.asList("MAC", "MAC", "MAC", "WINDOWS_SERVER", "WINDOWS_WORKSTATION");
+        addDevices(connection, "MegaCorp", types);
+        addDevices(connection, "MiniCorp", types);
+        addServices(connection, "MegaCorp", Arrays.asList("Antivirus", "Cloudberry", "TeamViewer"));
+        assertEquals(71, legacyCost("MegaCorp"));
+
+        // Batches smaller than the tables, and not dividing them evenly
+        final SchemaMigrator migrator = new H2SchemaMigrator(connection, 4, 3);
+        assertEquals(SchemaMigrator.BASELINE_VERSION, migrator.currentVersion());
+        assertEquals(2, migrator.migrate(2));
+        assertEquals(2, migrator.currentVersion());
+
+        final RmmDAO dao = new RmmDAO(MEMORY_DB, "", "");
+        assertEquals(5, dao.getDevices("MiniCorp").size());
+        assertEquals(Device.builder().id("d").type(Device.Type.WINDOWS_SERVER).name("WINDOWS_SERVER 3").build(),
+                dao.getDevices("MegaCorp").get(3));
+        assertEquals(Arrays.asList("Antivirus", "Cloudberry", "TeamViewer"), dao.getServices("MegaCorp"));
+        assertEquals(71, dao.monthlyCost("MegaCorp"));
+
+        // The previous application still reads through the compatibility views
+        assertEquals(71, legacyCost("MegaCorp"));
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT type FROM devices WHERE customer = 'MegaCorp' AND id = 'd'")) {
+            rs.next();
+            assertEquals("WINDOWS_SERVER", rs.getString(1));
+        }
+
+        // Already up to date
+        assertEquals(2, migrator.migrate(2));
+        assertEquals(5, dao.getDevices("MegaCorp").size());
+
+        // Contract
+        assertEquals(3, migrator.migrate());
+        assertFalse(connection.getMetaData().getTables(null, null, "DEVICES", null).next());
+        assertEquals(71, dao.monthlyCost("MegaCorp"));
+        dao.close();
+    }
+
+    @Test
+    public void testConcurrentWrites() throws SQLException {
+        addDevices(connection, "MegaCorp", Arrays.asList("MAC", "MAC", "MAC", "WINDOWS_SERVER", "WINDOWS_WORKSTATION"));
+        addServices(connection, "MegaCorp", Arrays.asList("Antivirus", "PSA"));
+
+        // Write through another connection while the first batch of devices has been copied
+        final SchemaMigrator migrator = new H2SchemaMigrator(connection, 4, 2) {
+            private boolean written;
+
+            @Override
+            void copied(final String table, final long rows) throws SQLException {
+                if (written) {
+                    return;
+                }
+                written = true;
+                try (Connection writer = DriverManager.getConnection(MEMORY_DB);
+                     Statement statement = writer.createStatement()) {
+                    // Update a copied row and one not copied yet, delete one of each, add one
+                    statement.execute("UPDATE devices SET name = 'Renamed', type = 'WINDOWS_SERVER' WHERE id = 'a'");
+                    statement.execute("UPDATE devices SET name = 'Later' WHERE id = 'e'");
+                    statement.execute("DELETE FROM devices WHERE id IN ('b', 'd')");
+                    statement.execute("INSERT INTO devices (customer, id, type, name) VALUES ('MegaCorp', 'f', 'MAC', 'New')");
+                    statement.execute("DELETE FROM services WHERE service = 'PSA'");
+                    statement.execute("INSERT INTO services (customer, service) VALUES ('MegaCorp', 'TeamViewer')");
+                }
+            }
+        };
+        assertEquals(3, migrator.migrate());
+
+        final RmmDAO dao = new RmmDAO(MEMORY_DB, "", "");
+        assertEquals(Arrays.asList(
+                Device.builder().id("a").type(Device.Type.WINDOWS_SERVER).name("Renamed").build(),
+                Device.builder().id("c").type(Device.Type.MAC).name("MAC 2").build(),
+                Device.builder().id("e").type(Device.Type.WINDOWS_WORKSTATION).name("Later").build(),
+                Device.builder().id("f").type(Device.Type.MAC).name("New").build()
+        ), dao.getDevices("MegaCorp"));
+        assertEquals(Arrays.asList("Antivirus", "TeamViewer"), dao.getServices("MegaCorp"));
+        dao.close();
+    }
+
+    @Test
+    public void testUnknownType() throws SQLException {
+        addDevices(connection, "MegaCorp", Arrays.asList("MAC", "TABLET", "MAC"));
+        try {
+            new H2SchemaMigrator(connection, 4, 2).migrate();
+            fail();
+        } catch (final SQLException sqle) {
+            // NOT NULL violation on the converted type
+        }
+        assertCaptureStopped();
+    }
+
+    @Test
+    public void testUnknownTypeWrittenDuringCopy() throws SQLException {
+        addDevices(connection, "MegaCorp", Arrays.asList("MAC", "MAC", "MAC"));
+        final SchemaMigrator migrator = new H2SchemaMigrator(connection, 4, 2) {
+            @Override
+            void copied(final String table, final long rows) throws SQLException {
+                try (Connection writer = DriverManager.getConnection(MEMORY_DB);
+                     Statement statement = writer.createStatement()) {
+                    statement.execute("UPDATE devices SET type = 'TABLET' WHERE id = 'a'");
+                }
+            }
+        };
+        try {
+            migrator.migrate();
+            fail();
+        } catch (final SQLException sqle) {
+            // Replay converts the same way as the copy
+        }
+        assertCaptureStopped();
+    }
+
+    /** A failed migration leaves version 1 in place, with no change capture left behind, and can be retried. */
+    private void assertCaptureStopped() throws SQLException {
+        assertEquals(SchemaMigrator.BASELINE_VERSION, new H2SchemaMigrator(connection, 4, 2).currentVersion());
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                     "SELECT count(*) FROM INFORMATION_SCHEMA.TRIGGERS WHERE TRIGGER_NAME LIKE '%_CAPTURE'")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+        assertFalse(connection.getMetaData().getTables(null, null, "DEVICES_CHANGES", null).next());
+        assertFalse(connection.getMetaData().getTables(null, null, "SERVICES_CHANGES", null).next());
+
+        // Fixed up, the migration runs again from scratch
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE devices SET type = 'MAC' WHERE type = 'TABLET'");
+        }
+        assertEquals(3, new H2SchemaMigrator(connection, 4, 2).migrate());
+        final RmmDAO dao = new RmmDAO(MEMORY_DB, "", "");
+        assertEquals(3, dao.countDevices("MegaCorp").get(Device.Type.MAC).intValue());
+        dao.close();
+    }
+
+    @Test
+    public void testMigrateEmpty() throws SQLException {
+        assertEquals(3, new H2SchemaMigrator(connection, 4, 3).migrate());
+        final RmmDAO dao = new RmmDAO(MEMORY_DB, "", "");
+        assertEquals(0, dao.monthlyCost("MegaCorp"));
+        dao.close();
+    }
+}
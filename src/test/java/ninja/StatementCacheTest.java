@@ -0,0 +1,79 @@
+package ninja;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatementCacheTest {
+
+    private static final String MEMORY_DB = "jdbc:h2:mem:statements";
+
+    private Connection connection;
+
+    /**
+     * Tracks statements prepared by {@link #cache}.
+     */
+    private LeakDetector leaks;
+
+    /**
+     * Instance being tested.
+     */
+    private StatementCache cache;
+
+    @Before
+    public void init() throws SQLException {
+        connection = DriverManager.getConnection(MEMORY_DB);
+        leaks = new LeakDetector();
+        cache = new StatementCache(leaks.wrap(connection), 2);
+    }
+
+    @After
+    public void clean() throws Exception {
+        try {
+            cache.close();
+        } finally {
+            connection.close();
+        }
+        assertEquals("Unclosed statements", 0, leaks.openStatements());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final PreparedStatement first = cache.prepare("SELECT 1");
+        cache.prepare("SELECT 2");
+        assertSame(first, cache.prepare("SELECT 1"));
+        // Evicts SELECT 2, the least recently used
+        cache.prepare("SELECT 3");
+        assertEquals(2, leaks.openStatements());
+        assertFalse(first.isClosed());
+        assertEquals(3, leaks.prepared());
+    }
+
+    @Test
+    public void testReprepareClosed() throws Exception {
+        final PreparedStatement first = cache.prepare("SELECT 1");
+        first.close();
+
+        final PreparedStatement second = cache.prepare("SELECT 1");
+        assertNotSame(first, second);
+        assertFalse(second.isClosed());
+        try (ResultSet rs = second.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+        }
+        assertSame(second, cache.prepare("SELECT 1"));
+        assertEquals(2, leaks.prepared());
+    }
+}
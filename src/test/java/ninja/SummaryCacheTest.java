@@ -0,0 +1,112 @@
+package ninja;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SummaryCacheTest {
+
+    private final AtomicLong clock = new AtomicLong(1000);
+
+    /** Number of loads, also used as the loaded summary's cost. */
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final SummaryCache cache = new SummaryCache(100, 2, clock::get);
+
+    private Summary load() {
+        return new Summary(Collections.emptyMap(), Collections.emptyList(), loads.incrementAndGet());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final Summary first = cache.get("MegaCorp", this::load);
+        clock.addAndGet(99);
+        assertSame(first, cache.get("MegaCorp", this::load));
+        clock.addAndGet(1);
+        assertEquals(2, cache.get("MegaCorp", this::load).getCost());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        cache.get("MegaCorp", this::load);
+        cache.get("MiniCorp", this::load);
+        cache.invalidate("MegaCorp");
+        assertEquals(3, cache.get("MegaCorp", this::load).getCost());
+        assertEquals(2, cache.get("MiniCorp", this::load).getCost());
+    }
+
+    @Test
+    public void testInvalidateWhileLoading() throws Exception {
+        // A write lands after the load read the DB, but before it stored the result
+        final Summary stale = cache.get("MegaCorp", () -> {
+            final Summary summary = load();
+            cache.invalidate("MegaCorp");
+            return summary;
+        });
+        assertEquals(1, stale.getCost());
+        assertEquals(2, cache.get("MegaCorp", this::load).getCost());
+        assertEquals(2, cache.get("MegaCorp", this::load).getCost());
+
+        // Same, with an expired summary already cached
+        clock.addAndGet(100);
+        cache.get("MegaCorp", () -> {
+            final Summary summary = load();
+            cache.invalidate("MegaCorp");
+            return summary;
+        });
+        assertEquals(4, cache.get("MegaCorp", this::load).getCost());
+    }
+
+    @Test
+    public void testSweep() throws Exception {
+        cache.get("A", this::load);
+        cache.get("B", this::load);
+        clock.addAndGet(50);
+        cache.invalidate("C");
+        clock.addAndGet(50);
+        // Over the sweep size: expired summaries go, the tombstone is too recent
+        cache.get("D", this::load);
+        assertEquals(2, cache.size());
+
+        // The tombstone still guards loads
+        cache.get("C", () -> {
+            final Summary summary = load();
+            cache.invalidate("C");
+            return summary;
+        });
+        assertEquals(5, cache.get("C", this::load).getCost());
+    }
+
+    @Test
+    public void testSweepTombstones() throws Exception {
+        // Written to, never read
+        for (int i = 0; i < 10; i++) {
+            cache.invalidate("Customer" + i);
+        }
+        clock.addAndGet(100);
+        cache.get("MegaCorp", this::load);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLoadOutlivesTombstone() throws Exception {
+        // A write, then long enough for its tombstone to be swept, all while the load runs
+        final Summary stale = cache.get("MegaCorp", () -> {
+            final Summary summary = load();
+            cache.invalidate("MegaCorp");
+            clock.addAndGet(100);
+            cache.get("A", this::load);
+            cache.get("B", this::load);
+            cache.get("C", this::load);
+            return summary;
+        });
+        assertEquals(1, stale.getCost());
+        assertEquals(5, cache.get("MegaCorp", this::load).getCost());
+    }
+}
@@ -1,4 +1,13 @@
+drop view if exists devices;
+drop view if exists services;
+drop view if exists service_defs;
 drop table if exists devices;
 drop table if exists services;
 drop table if exists service_defs;
-drop table if exists users;
\ No newline at end of file
+drop table if exists customer_devices;
+drop table if exists customer_services;
+drop table if exists service_prices;
+drop table if exists devices_changes;
+drop table if exists services_changes;
+drop table if exists users;
+drop table if exists schema_version;
\ No newline at end of file